@@ -1,10 +1,15 @@
 package org.daisy.pipeline.tts.filibuster;
 
-import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Collections;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import javax.sound.sampled.AudioFormat;
@@ -25,57 +30,142 @@ public class FilibusterEngine extends TTSEngine {
 	private Logger logger = LoggerFactory.getLogger(FilibusterEngine.class);
 
 	private AudioFormat audioFormat;
-	private String[] cmd;
 	private String[] env;
-	private File filibusterPath;
 	private int priority;
-    
-	private Map<FilibusterInstance, List<Thread>> filibusterInstances = Collections.synchronizedMap(new HashMap<FilibusterInstance, List<Thread>>());
-	private static final int MAX_FILIBUSTER_INSTANCES;
-	
-	// set MAX_FILIBUSTER_INSTANCES based on environment variable FILIBUSTER_INSTANCES or system property filibuster.instances
-	// default to 6 if neither is an integer
-	static {
-		int instances;
-		String instancesString = System.getenv("FILIBUSTER_INSTANCES");
-		try {
-			instances = Integer.parseInt(instancesString);
-		} catch (Exception e1) {
-			instancesString = System.getProperty("filibuster.instances");
-			try {
-				instances = Integer.parseInt(instancesString);
-			} catch (Exception e2) {
-				instances = 6;
-			}
-		}
-		MAX_FILIBUSTER_INSTANCES = instances > 0 ? instances : 1;
-	}
+	private boolean spill;
+
+	private String[] cpuSets;
+	private String[] niceness;
+	private String[] ioPriorities;
+	private String tasksetPath;
+	private String nicePath;
+	private String ionicePath;
+	private List<Integer> allowedCpus;
+
+	// one pool per voice; the first pool is used when no voice is requested
+	private Map<String, FilibusterPool> pools = new LinkedHashMap<String, FilibusterPool>();
+	private FilibusterPool defaultPool;
 
-	public FilibusterEngine(FilibusterService filibusterService, String filibusterPath, String tclshPath, int priority) {
+	// the slot of each running instance; slots are shared by all voices and limited by maxInstances
+	private Map<FilibusterInstance, Integer> instanceSlots = new HashMap<FilibusterInstance, Integer>();
+	private int maxInstances;
+
+	// how long an instance must have been idle before it can be handed over to another voice
+	private long rebalanceDelay;
+
+	public FilibusterEngine(FilibusterService filibusterService, List<FilibusterPool> voices, int priority,
+	                        int maxInstances, long rebalanceDelay,
+	                        String[] cpuSets, String[] niceness, String[] ioPriorities,
+	                        String tasksetPath, String nicePath, String ionicePath, String[] env, boolean spill) {
 		super(filibusterService);
-		this.filibusterPath = new File(filibusterPath);
+		this.maxInstances = maxInstances > 0 ? maxInstances : 1;
+		this.rebalanceDelay = rebalanceDelay > 0 ? rebalanceDelay : 0;
+		for (FilibusterPool pool : voices) {
+			pools.put(pool.voiceName, pool);
+			if (defaultPool == null) {
+				defaultPool = pool;
+			}
+		}
 		this.priority = priority;
-		this.cmd = new String[]{ tclshPath, "narraFil2.tcl", "no" };
-		this.env = new String[]{ "USER=user" };
-		
+		this.env = env;
+		this.spill = spill;
+		this.cpuSets = cpuSets;
+		this.niceness = niceness;
+		this.ioPriorities = ioPriorities;
+		this.tasksetPath = tasksetPath;
+		this.nicePath = nicePath;
+		this.ionicePath = ionicePath;
+		this.allowedCpus = allowedCpus();
+
 		this.audioFormat = new AudioFormat(AudioFormat.Encoding.PCM_SIGNED, 22050.0f, 16, 1, 2, 22050.0f, false);
 	}
-	
+
 	public String threadId() {
 		// for debugging
 		return (Thread.currentThread().getId()+"").replaceAll("^.*(..)$", "$1")+": ";
 	}
-	
+
+	/**
+	 * Build the command for the instance in the given slot, wrapping the Filibuster command
+	 * in taskset, nice and ionice when CPU affinity, niceness or I/O priority is configured.
+	 */
+	String[] instanceCommand(int slot, String[] cmd) {
+		List<String> result = new ArrayList<String>();
+		if (cpuSets.length > 0) {
+			String cpuSet = cpuSets[slot % cpuSets.length];
+			if ("auto".equals(cpuSet)) {
+				cpuSet = "" + allowedCpus.get(slot % allowedCpus.size());
+			}
+			result.addAll(Arrays.asList(tasksetPath, "-c", cpuSet));
+		}
+		if (niceness.length > 0) {
+			result.addAll(Arrays.asList(nicePath, "-n", niceness[slot % niceness.length]));
+		}
+		if (ioPriorities.length > 0) {
+			// either "class" or "class:level", for instance "2:7" for best-effort with lowest priority
+			String[] ioPriority = ioPriorities[slot % ioPriorities.length].split(":");
+			result.addAll(Arrays.asList(ionicePath, "-c", ioPriority[0]));
+			if (ioPriority.length > 1) {
+				result.addAll(Arrays.asList("-n", ioPriority[1]));
+			}
+		}
+		result.addAll(Arrays.asList(cmd));
+		return result.toArray(new String[result.size()]);
+	}
+
+	/**
+	 * The ids of the CPUs this process may run on, which on shared or containerized hosts are not
+	 * necessarily 0 to N-1. Read from /proc/self/status where available.
+	 */
+	static List<Integer> allowedCpus() {
+		try {
+			for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8)) {
+				if (line.startsWith("Cpus_allowed_list:")) {
+					List<Integer> cpus = parseCpuList(line.substring("Cpus_allowed_list:".length()));
+					if (!cpus.isEmpty()) {
+						return cpus;
+					}
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			// not Linux, or an unexpected format; assume the CPUs are numbered from 0
+		}
+		List<Integer> cpus = new ArrayList<Integer>();
+		for (int cpu = 0; cpu < Runtime.getRuntime().availableProcessors(); cpu++) {
+			cpus.add(cpu);
+		}
+		return cpus;
+	}
+
+	/**
+	 * Parse a CPU list such as "0,2,8-11".
+	 */
+	static List<Integer> parseCpuList(String cpuList) {
+		List<Integer> cpus = new ArrayList<Integer>();
+		for (String range : cpuList.trim().split(",")) {
+			if ("".equals(range.trim())) {
+				continue;
+			}
+			String[] bounds = range.trim().split("-");
+			int from = Integer.parseInt(bounds[0].trim());
+			int to = bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : from;
+			for (int cpu = from; cpu <= to; cpu++) {
+				cpus.add(cpu);
+			}
+		}
+		return cpus;
+	}
+
 	@Override
 	public int expectedMillisecPerWord() {
 		return 5000;
 	};
-	
+
 	@Override
 	public int reservedThreadNum() {
-		return MAX_FILIBUSTER_INSTANCES;
+		return maxInstances;
 	};
-	
+
 	@Override
 	public void interruptCurrentWork(TTSResource resource) {
 		// ignore interrupt requests! this is a slow TTS...
@@ -86,13 +176,15 @@ public class FilibusterEngine extends TTSEngine {
 	        Voice voice, TTSResource threadResources, List<Mark> marks,
 	        AudioBufferAllocator bufferAllocator, boolean retry) throws SynthesisException,
 	        InterruptedException, MemoryException {
-		
-		if (threadResources instanceof FilibusterInstance) {
-			logger.debug(threadId()+"synthesizing: '"+sentence+"'");
-			return ((FilibusterInstance)threadResources).synthesize(sentence, bufferAllocator);
-			
-		} else {
-			throw new SynthesisException("FilibusterEngine can only synthesize with a FilibusterInstance, not any other TTSResource");
+
+		FilibusterPool pool = getPool(voice);
+		FilibusterInstance instance = acquireInstance(pool);
+		try {
+			logger.debug(threadId()+"synthesizing with voice "+pool.voiceName+": '"+sentence+"'");
+			return instance.synthesize(sentence, bufferAllocator);
+
+		} finally {
+			releaseInstance(pool, instance);
 		}
 	}
 
@@ -104,7 +196,9 @@ public class FilibusterEngine extends TTSEngine {
 	@Override
 	public Collection<Voice> getAvailableVoices() {
 		Collection<Voice> result = new ArrayList<Voice>();
-		result.add(new Voice(getProvider().getName(), "Brage"));
+		for (String voiceName : pools.keySet()) {
+			result.add(new Voice(getProvider().getName(), voiceName));
+		}
 		return result;
 	}
 
@@ -113,65 +207,111 @@ public class FilibusterEngine extends TTSEngine {
 		return priority;
 	}
 
-	@Override
-	public synchronized TTSResource allocateThreadResources() throws SynthesisException, InterruptedException {
-		
-		for (FilibusterInstance instance : filibusterInstances.keySet()) {
-			List<Thread> threadList = filibusterInstances.get(instance);
-			if (threadList.contains(Thread.currentThread())) {
-				return instance;
-			}
+	FilibusterPool getPool(Voice voice) throws SynthesisException {
+		FilibusterPool pool = voice == null ? defaultPool : pools.get(voice.name);
+		if (pool == null) {
+			throw new SynthesisException("Filibuster voice is not configured: "+voice.name);
 		}
-		
-		if (filibusterInstances.size() < MAX_FILIBUSTER_INSTANCES) {
-			FilibusterInstance instance = new FilibusterInstance(cmd, env, filibusterPath);
-			List<Thread> threadList = new ArrayList<Thread>();
-			threadList.add(Thread.currentThread());
-			filibusterInstances.put(instance, threadList);
-			return instance;
+		return pool;
+	}
+
+	/**
+	 * Take an idle instance of the given voice, start a new one if the global budget allows it,
+	 * or take over the least recently used idle instance of a voice without queued work once it
+	 * has been idle for `rebalanceDelay` milliseconds. Otherwise wait until one of these becomes possible.
+	 */
+	FilibusterInstance acquireInstance(FilibusterPool pool) throws SynthesisException, InterruptedException {
+		FilibusterInstance instance = null;
+		FilibusterInstance evicted = null;
+		synchronized (this) {
+			pool.waiting++;
+			try {
+				while (instance == null) {
+					if (!pool.idle.isEmpty()) {
+						instance = pool.idle.removeFirst();
+						pool.idleSince.remove(instance);
+						break;
+					}
+
+					int slot = freeSlot();
+					if (slot >= 0) {
+						instance = newInstance(pool, slot);
+						break;
+					}
+
+					// prefer the voice with the most instances, and the longest idle instance among those
+					long now = new Date().getTime();
+					long waitMillis = 0; // 0 means until notified
+					FilibusterPool victim = null;
+					for (FilibusterPool other : pools.values()) {
+						if (other == pool || other.waiting > 0 || other.idle.isEmpty()) {
+							continue;
+						}
+						long idleMillis = other.idleMillis(now);
+						if (idleMillis < rebalanceDelay) {
+							long remaining = rebalanceDelay - idleMillis;
+							waitMillis = waitMillis == 0 ? remaining : Math.min(waitMillis, remaining);
+						} else if (victim == null || other.instances.size() > victim.instances.size()
+						           || other.instances.size() == victim.instances.size() && idleMillis > victim.idleMillis(now)) {
+							victim = other;
+						}
+					}
+					if (victim != null) {
+						evicted = victim.idle.getLast();
+						victim.idle.remove(evicted);
+						victim.idleSince.remove(evicted);
+						victim.instances.remove(evicted);
+						slot = instanceSlots.remove(evicted);
+						logger.debug(threadId()+"moving instance slot "+slot+" from voice "+victim.voiceName+" to voice "+pool.voiceName);
+						instance = newInstance(pool, slot);
+						break;
+					}
+
+					logger.debug(threadId()+"no room for more filibuster instances; waiting for an instance of voice "+pool.voiceName);
+					wait(waitMillis);
+				}
+			} finally {
+				pool.waiting--;
+				// other voices may take over this voice's idle instances now that it has no queued work
+				notifyAll();
+			}
 		}
-		
-		logger.debug(threadId()+"no room for more filibuster instances; reusing a filibuster instance");
-		int minThreads = -1;
-		FilibusterInstance instanceWithLeastThreads = null;
-		for (FilibusterInstance instance : filibusterInstances.keySet()) {
-			List<Thread> threadList = filibusterInstances.get(instance);
-			if (minThreads < 0 || threadList.size() < minThreads) {
-				minThreads = threadList.size();
-				instanceWithLeastThreads = instance;
+		if (evicted != null) {
+			// the slot already belongs to the new instance, so a failure to stop the old process must not be propagated
+			try {
+				evicted.stopFilibuster(true);
+			} catch (SynthesisException e) {
+				logger.warn(threadId()+"failed to stop filibuster instance evicted from its voice: "+e.getMessage());
+			} catch (InterruptedException e) {
+				releaseInstance(pool, instance);
+				throw e;
 			}
 		}
-		filibusterInstances.get(instanceWithLeastThreads).add(Thread.currentThread());
-		return instanceWithLeastThreads;
-		
+		return instance;
 	}
 
-	@Override
-	public synchronized void releaseThreadResources(TTSResource resource) throws SynthesisException, InterruptedException {
-		logger.debug(threadId()+"releaseThreadResources() -- got engine lock");
-		
-		List<Thread> threadList = null;
-		FilibusterInstance instance = null;
-		for (FilibusterInstance i : filibusterInstances.keySet()) {
-			threadList = filibusterInstances.get(i);
-			if (threadList.contains(Thread.currentThread())) {
-				instance = i;
-				break;
+	synchronized void releaseInstance(FilibusterPool pool, FilibusterInstance instance) {
+		pool.idle.addFirst(instance);
+		pool.idleSince.put(instance, new Date());
+		notifyAll();
+	}
+
+	private int freeSlot() {
+		for (int slot = 0; slot < maxInstances; slot++) {
+			if (!instanceSlots.containsValue(slot)) {
+				return slot;
 			}
 		}
-		
-		if (threadList != null) {
-			threadList.remove(Thread.currentThread());
-			logger.debug(threadId()+"thread removed itself from filibuster instance");
-			/*if (threadList.isEmpty()) {
-				logger.debug(threadId()+"no more threads using this filibuster instance; stopping filibuster...");
-				// Try stopping Filibuster
-				instance.stopFilibuster(false);
-				filibusterInstances.remove(instance);
-			}*/
-		}
-		super.releaseThreadResources(resource);
-		logger.debug(threadId()+"releaseThreadResources() -- released engine lock");
+		return -1;
+	}
+
+	// the process is started lazily by FilibusterInstance.synthesize
+	private FilibusterInstance newInstance(FilibusterPool pool, int slot) {
+		FilibusterInstance instance = new FilibusterInstance(instanceCommand(slot, pool.cmd), env, pool.filibusterPath, spill);
+		pool.instances.add(instance);
+		instanceSlots.put(instance, slot);
+		logger.debug(threadId()+"new filibuster instance for voice "+pool.voiceName+" in slot "+slot);
+		return instance;
 	}
 
 }
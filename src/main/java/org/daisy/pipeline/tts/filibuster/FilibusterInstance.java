@@ -22,13 +22,12 @@ import java.util.concurrent.TimeUnit;
 import org.daisy.pipeline.audio.AudioBuffer;
 import org.daisy.pipeline.tts.AudioBufferAllocator;
 import org.daisy.pipeline.tts.SoundUtil;
-import org.daisy.pipeline.tts.TTSRegistry.TTSResource;
 import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
 import org.daisy.pipeline.tts.TTSService.SynthesisException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-public class FilibusterInstance extends TTSResource {
+public class FilibusterInstance {
 	private Logger logger = LoggerFactory.getLogger(FilibusterInstance.class);
 	
 	private String currentSentence = null;
@@ -38,6 +37,7 @@ public class FilibusterInstance extends TTSResource {
 	private String[] cmd;
 	private String[] env;
 	private File filibusterPath;
+	private boolean spill;
 
 	private Process process = null;
 	private BufferedOutputStream stdin = null;
@@ -52,10 +52,11 @@ public class FilibusterInstance extends TTSResource {
 		return (Thread.currentThread().getId()+"").replaceAll("^.*(..)$", "$1")+": instance "+(this.hashCode()+"").replaceAll("^.*(..)$", "$1")+": ";
 	}
 	
-	public FilibusterInstance(String[] cmd, String[] env, File filibusterPath) {
+	public FilibusterInstance(String[] cmd, String[] env, File filibusterPath, boolean spill) {
 		this.cmd = cmd;
 		this.env = env;
 		this.filibusterPath = filibusterPath;
+		this.spill = spill;
 	}
 	
 	public synchronized void startFilibuster(boolean force) throws SynthesisException, InterruptedException {
@@ -173,6 +174,11 @@ public class FilibusterInstance extends TTSResource {
 				Date startTime = new Date();
 		
 				Collection<AudioBuffer> result = new ArrayList<AudioBuffer>();
+				
+				// when the buffer allocator runs out of memory, the rest of the sentence is written here
+				SpillFile spillFile = null;
+				byte[] spillChunk = null;
+				boolean streamDrained = false;
 		
 				startFilibuster(false);
 		
@@ -218,10 +224,31 @@ public class FilibusterInstance extends TTSResource {
 							}
 		
 						} else {
-							logger.debug(threadId()+"allocating buffer for "+bytesAvailable+" available bytes");
-							b = bufferAllocator.allocateBuffer(MIN_CHUNK_SIZE + bytesAvailable);
-							logger.debug(threadId()+"reading data into buffer of size '"+b.size+"': "+b+" ("+new Date()+")");
-							int ret = stdout.read(b.data, 0, b.size);
+							byte[] data;
+							if (spillFile == null) {
+								logger.debug(threadId()+"allocating buffer for "+bytesAvailable+" available bytes");
+								try {
+									b = bufferAllocator.allocateBuffer(MIN_CHUNK_SIZE + bytesAvailable);
+								} catch (MemoryException e) {
+									if (!spill) {
+										throw e;
+									}
+									spillFile = new SpillFile();
+									b = null;
+									// the buffers read so far are kept; only the rest of the sentence is read back later
+									logger.debug(threadId()+"out of memory; spilling the rest of the sentence to "+spillFile.getFile().getAbsolutePath());
+								}
+							}
+							if (spillFile == null) {
+								data = b.data;
+								logger.debug(threadId()+"reading data into buffer of size '"+b.size+"': "+b+" ("+new Date()+")");
+							} else {
+								if (spillChunk == null || spillChunk.length < MIN_CHUNK_SIZE + bytesAvailable) {
+									spillChunk = new byte[MIN_CHUNK_SIZE + bytesAvailable];
+								}
+								data = spillChunk;
+							}
+							int ret = stdout.read(data, 0, spillFile == null ? b.size : data.length);
 							logger.debug(threadId()+"return value from stdout.read: "+ret);
 							if (ret == -1) {
 								logger.debug(threadId()+"end of stream reached");
@@ -233,8 +260,8 @@ public class FilibusterInstance extends TTSResource {
 		
 							// store header in `header` and check expected file size.
 							int headerBytesInBuffer = 0;
-							for (int dataPos = 0; headerPos < header.length && dataPos < b.data.length; dataPos++) {
-								header[headerPos] = b.data[dataPos];
+							for (int dataPos = 0; headerPos < header.length && dataPos < ret; dataPos++) {
+								header[headerPos] = data[dataPos];
 								headerPos++;
 								headerBytesInBuffer++;
 							}
@@ -247,13 +274,18 @@ public class FilibusterInstance extends TTSResource {
 							logger.debug(threadId()+"WAV file should be "+(bytesExpected == header.length ? "at least " : "")+bytesExpected+" bytes in size. "+bytesRead+" bytes have been read so far.");
 		
 							if (logger.isDebugEnabled()) {
-								byteString += new String(b.data, "utf-8");
-								fos.write(b.data);
+								byteString += new String(data, 0, ret, "utf-8");
+								fos.write(data, 0, ret);
 							}
 		
 							int stripOverflowBytes = Math.max((bytesRead - bytesExpected), 0);
 		
-							if (ret - headerBytesInBuffer - stripOverflowBytes > 0) {
+							if (spillFile != null) {
+								if (ret - headerBytesInBuffer - stripOverflowBytes > 0) {
+									spillFile.write(data, headerBytesInBuffer, ret - headerBytesInBuffer - stripOverflowBytes);
+								}
+		
+							} else if (ret - headerBytesInBuffer - stripOverflowBytes > 0) {
 		
 								// don't include header in result bytes
 								if (headerBytesInBuffer > 0 || stripOverflowBytes > 0) {
@@ -265,11 +297,14 @@ public class FilibusterInstance extends TTSResource {
 									b.size = ret;
 								}
 		
-							} else if (headerBytesInBuffer > 0) {
+							} else {
 								logger.debug(threadId()+"discarding "+headerBytesInBuffer+" header bytes and "+stripOverflowBytes+" overflow bytes; no real audio data remaining in buffer");
+								b.size = 0;
 							}
 		
-							result.add(b);
+							if (spillFile == null) {
+								result.add(b);
+							}
 		
 						}
 		
@@ -282,6 +317,9 @@ public class FilibusterInstance extends TTSResource {
 						if (bytesAvailable > 0) logger.debug(threadId()+bytesAvailable+" bytes available; continuing loop");
 						else if (bytesRead < bytesExpected) logger.debug(threadId()+bytesRead+" bytes read but "+bytesExpected+" bytes expected; continuing loop");
 					}
+					if (bytesRead + 1 >= bytesExpected) {
+						streamDrained = true;
+					}
 					if (b != null) {
 						try {
 							bufferAllocator.releaseBuffer(b);
@@ -315,9 +353,26 @@ public class FilibusterInstance extends TTSResource {
 		
 					// hopefully it's ok to not close audioStream ? Otherwise, how can I close the audioStream without closing the underlying stdout?
 		
+					if (spillFile != null) {
+						logger.debug(threadId()+"reading back "+spillFile.size()+" spilled bytes");
+						try {
+							spillFile.readBack(bufferAllocator, result);
+						} finally {
+							spillFile.close();
+						}
+					}
+		
 				} catch (MemoryException e) {
 					SoundUtil.cancelFootPrint(result, bufferAllocator);
-					process.destroy();
+					if (spillFile != null) {
+						spillFile.close();
+					}
+					if (streamDrained) {
+						// the whole sentence has been read from the process, so it can be reused
+						logger.debug(threadId()+"out of memory after the sentence was read; keeping the process alive");
+					} else {
+						process.destroy();
+					}
 					currentSentence = null;
 					current.remove(currentSentenceNr);
 					logger.debug(threadId()+"sentence number "+currentSentenceNr+" removed ("+sentence+")");
@@ -325,6 +380,9 @@ public class FilibusterInstance extends TTSResource {
 		
 				} catch (Exception e) {
 					SoundUtil.cancelFootPrint(result, bufferAllocator);
+					if (spillFile != null) {
+						spillFile.close();
+					}
 					StringWriter sw = new StringWriter();
 					e.printStackTrace(new PrintWriter(sw));
 					if (process != null)
@@ -0,0 +1,46 @@
+package org.daisy.pipeline.tts.filibuster;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The Filibuster instances of a single voice. All fields are guarded by the
+ * lock of the FilibusterEngine that owns the pool.
+ */
+class FilibusterPool {
+
+	final String voiceName;
+	final String[] cmd;
+	final File filibusterPath;
+
+	// all instances belonging to this voice, both busy and idle
+	final List<FilibusterInstance> instances = new ArrayList<FilibusterInstance>();
+
+	// idle instances, most recently used first so that warm instances are reused
+	final LinkedList<FilibusterInstance> idle = new LinkedList<FilibusterInstance>();
+	final Map<FilibusterInstance, Date> idleSince = new HashMap<FilibusterInstance, Date>();
+
+	// number of threads waiting for an instance of this voice
+	int waiting = 0;
+
+	FilibusterPool(String voiceName, String[] cmd, File filibusterPath) {
+		this.voiceName = voiceName;
+		this.cmd = cmd;
+		this.filibusterPath = filibusterPath;
+	}
+
+	/**
+	 * How long the least recently used idle instance has been idle at time `now`, or -1 if no instance is idle.
+	 */
+	long idleMillis(long now) {
+		if (idle.isEmpty()) {
+			return -1;
+		}
+		return now - idleSince.get(idle.getLast()).getTime();
+	}
+}
@@ -1,15 +1,22 @@
 package org.daisy.pipeline.tts.filibuster;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Map;
 
 import org.daisy.common.shell.BinaryFinder;
 import org.daisy.pipeline.tts.AbstractTTSService;
 import org.daisy.pipeline.tts.TTSEngine;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import com.google.common.base.Optional;
 
 public class FilibusterService extends AbstractTTSService {
+	private Logger logger = LoggerFactory.getLogger(FilibusterService.class);
 
 	@Override
 	public TTSEngine newEngine(Map<String, String> params) throws Throwable {
@@ -41,8 +48,31 @@ public class FilibusterService extends AbstractTTSService {
 				filibusterPath = new File("C:\\filibuster\\").getCanonicalPath(); 
 			}
 		}
-		if (filibusterPath == null) {
-			throw new SynthesisException("Cannot find the path to filibuster using either system property " + filibusterProp + " or environment variable " + filibusterEnv + " and filibuster was not found in /opt/filibuster/ nor in C:\\filibuster\\");
+		
+		// voices; each voice can have its own installation path and command, and defaults to
+		// the installation found above and the narraFil2.tcl command
+		List<FilibusterPool> voices = new ArrayList<FilibusterPool>();
+		String[] voiceNames = splitSetting(getSetting(params, "filibuster.voices", "FILIBUSTER_VOICES"));
+		if (voiceNames.length == 0) {
+			voiceNames = new String[]{ "Brage" };
+		}
+		for (String voiceName : voiceNames) {
+			String voiceEnv = "FILIBUSTER_VOICE_" + voiceName.toUpperCase().replaceAll("[^A-Z0-9]", "_");
+			String voicePath = getSetting(params, "filibuster.voice." + voiceName + ".path", voiceEnv + "_PATH");
+			String voiceCommand = getSetting(params, "filibuster.voice." + voiceName + ".command", voiceEnv + "_COMMAND");
+			if (voicePath == null) {
+				voicePath = filibusterPath;
+			}
+			if (voicePath == null) {
+				throw new SynthesisException("Cannot find the path to filibuster for the voice " + voiceName + " using either system property filibuster.voice." + voiceName + ".path, system property " + filibusterProp + " or environment variable " + filibusterEnv + " and filibuster was not found in /opt/filibuster/ nor in C:\\filibuster\\");
+			}
+			if (voiceCommand == null) {
+				voiceCommand = "narraFil2.tcl no";
+			}
+			List<String> cmd = new ArrayList<String>();
+			cmd.add(tclshPath);
+			cmd.addAll(Arrays.asList(voiceCommand.trim().split("\\s+")));
+			voices.add(new FilibusterPool(voiceName, cmd.toArray(new String[cmd.size()]), new File(voicePath)));
 		}
 
 		String priority = params.get("filibuster.priority");
@@ -55,7 +85,98 @@ public class FilibusterService extends AbstractTTSService {
 			}
 		}
 
-		return new FilibusterEngine(this, filibusterPath, tclshPath, intPriority);
+		// total number of instances shared by all voices, and how long an instance must have been idle
+		// before it can be handed over to another voice
+		int maxInstances = Runtime.getRuntime().availableProcessors();
+		String instances = getSetting(params, "filibuster.instances", "FILIBUSTER_INSTANCES");
+		if (instances != null) {
+			try {
+				maxInstances = Integer.valueOf(instances);
+			} catch (NumberFormatException e) {
+				logger.warn("filibuster.instances is not an integer: " + instances);
+			}
+		}
+		long rebalanceDelay = 0;
+		String delay = getSetting(params, "filibuster.rebalance.delay", "FILIBUSTER_REBALANCE_DELAY");
+		if (delay != null) {
+			try {
+				rebalanceDelay = Long.valueOf(delay);
+			} catch (NumberFormatException e) {
+				logger.warn("filibuster.rebalance.delay is not an integer: " + delay);
+			}
+		}
+
+		// process scheduling: CPU affinity, niceness and I/O priority. Multiple values are separated by ';'
+		// and are assigned to the instances in a round-robin fashion.
+		String[] cpuSets = splitSetting(getSetting(params, "filibuster.cpus", "FILIBUSTER_CPUS"));
+		String[] niceness = splitSetting(getSetting(params, "filibuster.nice", "FILIBUSTER_NICE"));
+		String[] ioPriorities = splitSetting(getSetting(params, "filibuster.ionice", "FILIBUSTER_IONICE"));
+		String tasksetPath = cpuSets.length > 0 ? findBinary("taskset") : null;
+		String nicePath = niceness.length > 0 ? findBinary("nice") : null;
+		String ionicePath = ioPriorities.length > 0 ? findBinary("ionice") : null;
+		
+		// process environment; for instance "OMP_NUM_THREADS=1;OPENBLAS_NUM_THREADS=1"
+		String[] env = processEnvironment(getSetting(params, "filibuster.env", "FILIBUSTER_ENV"));
+
+		// spill audio to a temporary file instead of failing when the audio buffer allocator runs out of memory
+		boolean spill = !"false".equals(getSetting(params, "filibuster.spill", "FILIBUSTER_SPILL"));
+
+		return new FilibusterEngine(this, voices, intPriority, maxInstances, rebalanceDelay,
+		        tasksetPath == null ? new String[0] : cpuSets,
+		        nicePath == null ? new String[0] : niceness,
+		        ionicePath == null ? new String[0] : ioPriorities,
+		        tasksetPath, nicePath, ionicePath, env, spill);
+	}
+	
+	// the configured environment variables, with USER defaulting to "user" unless it is configured
+	String[] processEnvironment(String configured) {
+		List<String> env = new ArrayList<String>();
+		boolean userConfigured = false;
+		for (String variable : splitSetting(configured)) {
+			if (variable.contains("=")) {
+				env.add(variable);
+				userConfigured = userConfigured || variable.startsWith("USER=");
+			} else {
+				logger.warn("Ignoring environment variable without value in filibuster.env: " + variable);
+			}
+		}
+		if (!userConfigured) {
+			env.add("USER=user");
+		}
+		return env.toArray(new String[env.size()]);
+	}
+	
+	// look for a setting in the engine parameters, then the system properties, then the environment
+	static String getSetting(Map<String, String> params, String prop, String env) {
+		String value = params.get(prop);
+		if (value == null) {
+			value = System.getProperty(prop);
+		}
+		if (value == null) {
+			value = System.getenv(env);
+		}
+		return value;
+	}
+	
+	static String[] splitSetting(String value) {
+		List<String> result = new ArrayList<String>();
+		if (value != null) {
+			for (String part : value.split(";")) {
+				if (!"".equals(part.trim())) {
+					result.add(part.trim());
+				}
+			}
+		}
+		return result.toArray(new String[result.size()]);
+	}
+	
+	private String findBinary(String name) {
+		Optional<String> path = BinaryFinder.find(name);
+		if (!path.isPresent()) {
+			logger.warn("Cannot find " + name + "'s binary; the corresponding Filibuster process setting will be ignored");
+			return null;
+		}
+		return path.get();
 	}
 
 	@Override
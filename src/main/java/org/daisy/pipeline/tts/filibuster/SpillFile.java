@@ -0,0 +1,89 @@
+package org.daisy.pipeline.tts.filibuster;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.Collection;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator;
+import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Temporary file holding the rest of the PCM data of a sentence when the audio buffer allocator runs out
+ * of memory, so that the Filibuster process can be drained and kept alive. The data is read back into
+ * allocated buffers once the sentence is complete.
+ */
+class SpillFile {
+	private Logger logger = LoggerFactory.getLogger(SpillFile.class);
+
+	private final static int CHUNK_SIZE = 65536;
+
+	private File file;
+	private RandomAccessFile raf;
+	private FileChannel channel;
+	private long size = 0;
+
+	SpillFile() throws IOException {
+		file = Files.createTempFile("filibuster-spill", ".pcm").toFile();
+		raf = new RandomAccessFile(file, "rw");
+		channel = raf.getChannel();
+	}
+
+	void write(byte[] data, int offset, int length) throws IOException {
+		ByteBuffer bb = ByteBuffer.wrap(data, offset, length);
+		while (bb.hasRemaining()) {
+			channel.write(bb);
+		}
+		size += length;
+	}
+
+	long size() {
+		return size;
+	}
+
+	File getFile() {
+		return file;
+	}
+
+	/**
+	 * Copy the spilled data into buffers from the allocator. Each chunk is allocated only once, and a
+	 * MemoryException is thrown as soon as an allocation fails. Buffers that were already allocated are
+	 * left in `result`.
+	 */
+	void readBack(AudioBufferAllocator bufferAllocator, Collection<AudioBuffer> result) throws IOException, MemoryException {
+		long position = 0;
+		while (position < size) {
+			int chunkSize = (int)Math.min(size - position, CHUNK_SIZE);
+			AudioBuffer b = bufferAllocator.allocateBuffer(chunkSize);
+			ByteBuffer bb = ByteBuffer.wrap(b.data, 0, chunkSize);
+			while (bb.hasRemaining()) {
+				int ret = channel.read(bb, position + bb.position());
+				if (ret < 0) {
+					bufferAllocator.releaseBuffer(b);
+					throw new IOException("unexpected end of spill file "+file.getAbsolutePath());
+				}
+			}
+			b.size = chunkSize;
+			result.add(b);
+			position += chunkSize;
+		}
+	}
+
+	void close() {
+		try {
+			channel.close();
+			raf.close();
+		} catch (IOException e) {
+			logger.debug("failed to close spill file "+file.getAbsolutePath()+": "+e.getMessage());
+		}
+		if (file.exists() && !file.delete()) {
+			logger.warn("failed to delete spill file "+file.getAbsolutePath());
+		}
+	}
+}
@@ -0,0 +1,186 @@
+package org.daisy.pipeline.tts.filibuster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.AudioBufferAllocator.MemoryException;
+import org.daisy.pipeline.tts.StraightBufferAllocator;
+import org.daisy.pipeline.tts.TTSService.SynthesisException;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+/**
+ * Reads WAV data from a fake Filibuster process that outputs a prepared file.
+ */
+public class FilibusterInstanceTest {
+
+	// fails the given allocations (1-based), or every allocation from `failFrom` on, and keeps track of unreleased buffers
+	static class TestAllocator extends StraightBufferAllocator {
+		int allocations = 0;
+		int failOn;
+		int failFrom;
+		AudioBuffer first = null;
+		Set<AudioBuffer> allocated = Collections.newSetFromMap(new IdentityHashMap<AudioBuffer, Boolean>());
+
+		TestAllocator(int failOn, int failFrom) {
+			this.failOn = failOn;
+			this.failFrom = failFrom;
+		}
+
+		@Override
+		public AudioBuffer allocateBuffer(int size) throws MemoryException {
+			allocations++;
+			if (allocations == failOn || (failFrom > 0 && allocations >= failFrom)) {
+				throw new MemoryException(size);
+			}
+			AudioBuffer b = super.allocateBuffer(size);
+			allocated.add(b);
+			if (first == null) {
+				first = b;
+			}
+			return b;
+		}
+
+		@Override
+		public void releaseBuffer(AudioBuffer b) {
+			allocated.remove(b);
+			super.releaseBuffer(b);
+		}
+	}
+
+	private static byte[] payload(int size) {
+		byte[] payload = new byte[size];
+		for (int i = 0; i < size; i++) {
+			payload[i] = (byte)(i % 251);
+		}
+		return payload;
+	}
+
+	// WAV header followed by the payload and some overflow bytes that are not part of the WAV file
+	private static File wavFile(byte[] payload) throws Exception {
+		return wavFile(payload, 8);
+	}
+
+	private static File wavFile(byte[] payload, int overflow) throws Exception {
+		File file = Files.createTempFile("filibuster-test", ".wav").toFile();
+		file.deleteOnExit();
+		ByteBuffer header = ByteBuffer.allocate(44);
+		header.order(ByteOrder.LITTLE_ENDIAN);
+		header.put("RIFF".getBytes("ascii"));
+		header.putInt(36 + payload.length);
+		header.put("WAVE".getBytes("ascii"));
+		FileOutputStream fos = new FileOutputStream(file);
+		fos.write(header.array());
+		fos.write(payload);
+		byte[] overflowBytes = new byte[overflow];
+		Arrays.fill(overflowBytes, (byte)0x7f);
+		fos.write(overflowBytes);
+		fos.close();
+		return file;
+	}
+
+	private static FilibusterInstance fakeInstance(File wav, boolean spill) {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		return new FilibusterInstance(new String[]{ "/bin/sh", "-c", "read line; exec cat '" + wav.getAbsolutePath() + "'" },
+		                              new String[]{ "PATH=" + System.getenv("PATH") }, wav.getParentFile(), spill);
+	}
+
+	// the fake process exits after one sentence, so stopping it may fail on the closed pipe
+	private static void stop(FilibusterInstance instance) throws InterruptedException {
+		try {
+			instance.stopFilibuster(true);
+		} catch (SynthesisException e) {
+		}
+	}
+
+	private static byte[] bytes(Collection<AudioBuffer> buffers) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		for (AudioBuffer b : buffers) {
+			bytes.write(b.data, 0, b.size);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Test
+	public void stripOverflowWithoutSpill() throws Throwable {
+		byte[] payload = payload(100000);
+		// enough overflow to end up in chunks of its own
+		FilibusterInstance instance = fakeInstance(wavFile(payload, 200000), true);
+		try {
+			Assert.assertArrayEquals(payload, bytes(instance.synthesize("test", new TestAllocator(0, 0))));
+		} finally {
+			stop(instance);
+		}
+	}
+
+	@Test
+	public void spillFromFirstChunk() throws Throwable {
+		byte[] payload = payload(100000);
+		FilibusterInstance instance = fakeInstance(wavFile(payload), true);
+		TestAllocator allocator = new TestAllocator(1, 0);
+		try {
+			Collection<AudioBuffer> result = instance.synthesize("test", allocator);
+			// header and overflow bytes are stripped
+			Assert.assertArrayEquals(payload, bytes(result));
+			Assert.assertEquals(result.size(), allocator.allocated.size());
+			for (AudioBuffer b : result) {
+				Assert.assertTrue(allocator.allocated.contains(b));
+			}
+		} finally {
+			stop(instance);
+		}
+	}
+
+	@Test
+	public void spillAfterFirstChunk() throws Throwable {
+		byte[] payload = payload(300000);
+		FilibusterInstance instance = fakeInstance(wavFile(payload), true);
+		TestAllocator allocator = new TestAllocator(2, 0);
+		try {
+			Collection<AudioBuffer> result = instance.synthesize("test", allocator);
+			Assert.assertArrayEquals(payload, bytes(result));
+			// the buffer read before spilling is kept
+			Assert.assertSame(allocator.first, result.iterator().next());
+		} finally {
+			stop(instance);
+		}
+	}
+
+	@Test
+	public void readBackFailsFast() throws Throwable {
+		FilibusterInstance instance = fakeInstance(wavFile(payload(100000)), true);
+		TestAllocator allocator = new TestAllocator(0, 1);
+		Date start = new Date();
+		try {
+			instance.synthesize("test", allocator);
+			Assert.fail("expected MemoryException");
+		} catch (MemoryException e) {
+			Assert.assertTrue(new Date().getTime() - start.getTime() < 10000);
+			Assert.assertTrue(allocator.allocated.isEmpty());
+		} finally {
+			stop(instance);
+		}
+	}
+
+	@Test(expected = MemoryException.class)
+	public void noSpill() throws Throwable {
+		FilibusterInstance instance = fakeInstance(wavFile(payload(100000)), false);
+		try {
+			instance.synthesize("test", new TestAllocator(1, 0));
+		} finally {
+			stop(instance);
+		}
+	}
+}
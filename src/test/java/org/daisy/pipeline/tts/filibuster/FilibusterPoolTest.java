@@ -0,0 +1,125 @@
+package org.daisy.pipeline.tts.filibuster;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Date;
+
+import org.daisy.pipeline.tts.TTSService.SynthesisException;
+import org.daisy.pipeline.tts.Voice;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class FilibusterPoolTest {
+
+	private static FilibusterEngine allocateEngine(int maxInstances, long rebalanceDelay, String... voiceNames) {
+		FilibusterPool[] pools = new FilibusterPool[voiceNames.length];
+		for (int i = 0; i < voiceNames.length; i++) {
+			pools[i] = new FilibusterPool(voiceNames[i], new String[]{ "tclsh", voiceNames[i] + ".tcl" }, new File("."));
+		}
+		return new FilibusterEngine(new FilibusterService(), Arrays.asList(pools), 2, maxInstances, rebalanceDelay,
+		                            new String[0], new String[0], new String[0], null, null, null,
+		                            new String[]{ "USER=user" }, true);
+	}
+
+	@Test
+	public void routeByVoice() throws Throwable {
+		FilibusterEngine engine = allocateEngine(2, 0, "Brage", "Other");
+		Assert.assertEquals("Brage", engine.getPool(new Voice("filibuster", "Brage")).voiceName);
+		Assert.assertEquals("Other", engine.getPool(new Voice("filibuster", "Other")).voiceName);
+		Assert.assertEquals("Brage", engine.getPool(null).voiceName);
+		Assert.assertEquals(2, engine.getAvailableVoices().size());
+	}
+
+	@Test(expected = SynthesisException.class)
+	public void unknownVoice() throws Throwable {
+		allocateEngine(2, 0, "Brage").getPool(new Voice("filibuster", "Unknown"));
+	}
+
+	@Test
+	public void reuseIdleInstance() throws Throwable {
+		FilibusterEngine engine = allocateEngine(2, 0, "Brage");
+		FilibusterPool pool = engine.getPool(null);
+		FilibusterInstance first = engine.acquireInstance(pool);
+		engine.releaseInstance(pool, first);
+		Assert.assertSame(first, engine.acquireInstance(pool));
+		Assert.assertEquals(1, pool.instances.size());
+	}
+
+	@Test
+	public void evictLeastRecentlyUsedInstance() throws Throwable {
+		FilibusterEngine engine = allocateEngine(2, 0, "Brage", "Other");
+		FilibusterPool brage = engine.getPool(new Voice("filibuster", "Brage"));
+		FilibusterPool other = engine.getPool(new Voice("filibuster", "Other"));
+		FilibusterInstance first = engine.acquireInstance(brage);
+		FilibusterInstance second = engine.acquireInstance(brage);
+		engine.releaseInstance(brage, first);
+		engine.releaseInstance(brage, second);
+
+		// the budget is full, so an idle instance of the other voice is taken over immediately
+		FilibusterInstance instance = engine.acquireInstance(other);
+		Assert.assertEquals(Arrays.asList(second), brage.instances);
+		Assert.assertEquals(Arrays.asList(instance), other.instances);
+	}
+
+	@Test
+	public void waitForBusyInstance() throws Throwable {
+		final FilibusterEngine engine = allocateEngine(1, 0, "Brage", "Other");
+		final FilibusterPool brage = engine.getPool(new Voice("filibuster", "Brage"));
+		FilibusterPool other = engine.getPool(new Voice("filibuster", "Other"));
+		final FilibusterInstance busy = engine.acquireInstance(brage);
+		Thread releaser = new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+				}
+				engine.releaseInstance(brage, busy);
+			}
+		};
+		releaser.start();
+		Date start = new Date();
+		engine.acquireInstance(other);
+		releaser.join();
+		Assert.assertTrue(new Date().getTime() - start.getTime() >= 150);
+		Assert.assertTrue(brage.instances.isEmpty());
+		Assert.assertEquals(1, other.instances.size());
+	}
+
+	@Test
+	public void rebalanceDelay() throws Throwable {
+		FilibusterEngine engine = allocateEngine(1, 300, "Brage", "Other");
+		FilibusterPool brage = engine.getPool(new Voice("filibuster", "Brage"));
+		FilibusterPool other = engine.getPool(new Voice("filibuster", "Other"));
+		engine.releaseInstance(brage, engine.acquireInstance(brage));
+		Date start = new Date();
+		engine.acquireInstance(other);
+		long waited = new Date().getTime() - start.getTime();
+		Assert.assertTrue(waited >= 250);
+		// waits for the remaining time instead of polling
+		Assert.assertTrue(waited < 1000);
+	}
+
+	@Test
+	public void evictDeadInstance() throws Throwable {
+		Assume.assumeTrue(new File("/bin/sh").canExecute());
+		FilibusterPool brage = new FilibusterPool("Brage", new String[]{ "/bin/sh", "-c", "exit 0" }, new File("."));
+		FilibusterPool other = new FilibusterPool("Other", new String[]{ "/bin/sh", "-c", "exit 0" }, new File("."));
+		FilibusterEngine engine = new FilibusterEngine(new FilibusterService(), Arrays.asList(brage, other), 2, 1, 0,
+		                                               new String[0], new String[0], new String[0], null, null, null,
+		                                               new String[]{ "USER=user" }, true);
+
+		// an idle instance whose process has died, so that stopping it fails on the closed pipe
+		FilibusterInstance dead = engine.acquireInstance(brage);
+		dead.startFilibuster(false);
+		Thread.sleep(500);
+		engine.releaseInstance(brage, dead);
+
+		FilibusterInstance instance = engine.acquireInstance(other);
+		Assert.assertEquals(Arrays.asList(instance), other.instances);
+		engine.releaseInstance(other, instance);
+
+		// the slot is still available
+		Assert.assertSame(instance, engine.acquireInstance(other));
+	}
+}
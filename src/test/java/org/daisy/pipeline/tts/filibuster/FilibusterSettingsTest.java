@@ -0,0 +1,101 @@
+package org.daisy.pipeline.tts.filibuster;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FilibusterSettingsTest {
+
+	private static final String[] CMD = new String[]{ "tclsh", "narraFil2.tcl", "no" };
+
+	private static FilibusterEngine allocateEngine(String[] cpuSets, String[] niceness, String[] ioPriorities) {
+		FilibusterPool pool = new FilibusterPool("Brage", CMD, new File("."));
+		return new FilibusterEngine(new FilibusterService(), Arrays.asList(pool), 2, 4, 0,
+		                            cpuSets, niceness, ioPriorities, "taskset", "nice", "ionice",
+		                            new String[]{ "USER=user" }, true);
+	}
+
+	@Test
+	public void plainCommand() {
+		FilibusterEngine engine = allocateEngine(new String[0], new String[0], new String[0]);
+		Assert.assertArrayEquals(CMD, engine.instanceCommand(3, CMD));
+	}
+
+	@Test
+	public void roundRobin() {
+		FilibusterEngine engine = allocateEngine(new String[]{ "0", "1-2" }, new String[]{ "10" }, new String[0]);
+		Assert.assertArrayEquals(new String[]{ "taskset", "-c", "0", "nice", "-n", "10", "tclsh", "narraFil2.tcl", "no" },
+		                         engine.instanceCommand(0, CMD));
+		Assert.assertArrayEquals(new String[]{ "taskset", "-c", "1-2", "nice", "-n", "10", "tclsh", "narraFil2.tcl", "no" },
+		                         engine.instanceCommand(1, CMD));
+		Assert.assertArrayEquals(new String[]{ "taskset", "-c", "0", "nice", "-n", "10", "tclsh", "narraFil2.tcl", "no" },
+		                         engine.instanceCommand(2, CMD));
+	}
+
+	@Test
+	public void autoAffinity() {
+		FilibusterEngine engine = allocateEngine(new String[]{ "auto" }, new String[0], new String[0]);
+		List<Integer> cpus = FilibusterEngine.allowedCpus();
+		Assert.assertArrayEquals(new String[]{ "taskset", "-c", "" + cpus.get(5 % cpus.size()), "tclsh", "narraFil2.tcl", "no" },
+		                         engine.instanceCommand(5, CMD));
+	}
+
+	@Test
+	public void parseCpuList() {
+		Assert.assertEquals(Arrays.asList(8, 9, 10, 11), FilibusterEngine.parseCpuList("\t8-11\n"));
+		Assert.assertEquals(Arrays.asList(0, 2, 4, 5, 6), FilibusterEngine.parseCpuList("0,2,4-6"));
+	}
+
+	@Test
+	public void processEnvironment() {
+		FilibusterService service = new FilibusterService();
+		Assert.assertArrayEquals(new String[]{ "USER=user" }, service.processEnvironment(null));
+		Assert.assertArrayEquals(new String[]{ "OMP_NUM_THREADS=1", "USER=user" },
+		                         service.processEnvironment("OMP_NUM_THREADS=1;INVALID"));
+		Assert.assertArrayEquals(new String[]{ "USER=filibuster", "OMP_NUM_THREADS=1" },
+		                         service.processEnvironment("USER=filibuster;OMP_NUM_THREADS=1"));
+	}
+
+	@Test
+	public void ioPriority() {
+		FilibusterEngine engine = allocateEngine(new String[0], new String[0], new String[]{ "2:7", "3" });
+		Assert.assertArrayEquals(new String[]{ "ionice", "-c", "2", "-n", "7", "tclsh", "narraFil2.tcl", "no" },
+		                         engine.instanceCommand(0, CMD));
+		Assert.assertArrayEquals(new String[]{ "ionice", "-c", "3", "tclsh", "narraFil2.tcl", "no" },
+		                         engine.instanceCommand(1, CMD));
+	}
+
+	@Test
+	public void splitSetting() {
+		Assert.assertArrayEquals(new String[0], FilibusterService.splitSetting(null));
+		Assert.assertArrayEquals(new String[]{ "0", "1-2" }, FilibusterService.splitSetting(" 0 ;; 1-2 ;"));
+		Assert.assertArrayEquals(new String[]{ "OMP_NUM_THREADS=1" }, FilibusterService.splitSetting("OMP_NUM_THREADS=1"));
+	}
+
+	@Test
+	public void settingPrecedence() {
+		String prop = "filibuster.test.setting";
+		Map<String, String> params = new HashMap<String, String>();
+		try {
+			// environment variable when neither parameter nor system property is set
+			Assert.assertEquals(System.getenv("PATH"), FilibusterService.getSetting(params, prop, "PATH"));
+			Assert.assertNull(FilibusterService.getSetting(params, prop, "FILIBUSTER_TEST_UNDEFINED"));
+
+			// system property before environment variable
+			System.setProperty(prop, "property");
+			Assert.assertEquals("property", FilibusterService.getSetting(params, prop, "PATH"));
+
+			// parameter before system property
+			params.put(prop, "parameter");
+			Assert.assertEquals("parameter", FilibusterService.getSetting(params, prop, "PATH"));
+
+		} finally {
+			System.clearProperty(prop);
+		}
+	}
+}
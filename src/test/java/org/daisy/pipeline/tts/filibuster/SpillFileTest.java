@@ -0,0 +1,43 @@
+package org.daisy.pipeline.tts.filibuster;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+
+import org.daisy.pipeline.audio.AudioBuffer;
+import org.daisy.pipeline.tts.StraightBufferAllocator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class SpillFileTest {
+
+	@Test
+	public void writeAndReadBack() throws Throwable {
+		byte[] data = new byte[200000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte)(i % 251);
+		}
+		SpillFile spillFile = new SpillFile();
+		File file = spillFile.getFile();
+		try {
+			for (int offset = 0; offset < data.length; offset += 3000) {
+				spillFile.write(data, offset, Math.min(3000, data.length - offset));
+			}
+			Assert.assertEquals(data.length, spillFile.size());
+
+			Collection<AudioBuffer> result = new ArrayList<AudioBuffer>();
+			spillFile.readBack(new StraightBufferAllocator(), result);
+			Assert.assertTrue(result.size() > 1);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			for (AudioBuffer b : result) {
+				bytes.write(b.data, 0, b.size);
+			}
+			Assert.assertArrayEquals(data, bytes.toByteArray());
+
+		} finally {
+			spillFile.close();
+		}
+		Assert.assertFalse(file.exists());
+	}
+}